@@ -0,0 +1,15 @@
+#!/bin/sh
+# Allocation regression check: runs a fixed workload through "java Main alloc" and fails if the average
+# number of bytes allocated per command of any type exceeds its budget. Activate and Deactivate are also
+# checked against the most allocating single command, since only some of them change the account state.
+# Results are deterministic for a given JDK, so budgets are the values measured on JDK 17 plus 2 bytes:
+# one extra state object on the state-changing calls already exceeds them.
+# Lower them when a change cuts allocation, raise them only together with the change that needs it.
+set -e
+cd "$(dirname "$0")"
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+javac -d "$out" src/Main.java
+java -cp "$out" Main alloc --accounts 1000 --commands 100000 --seed 42 --skew 0.99 --warmup 2 \
+    --budget Create=1913,Deposit=2366,Withdraw=1747,Transfer=1692,View=79953,Activate=143,Deactivate=149 \
+    --max-budget Activate=144,Deactivate=152
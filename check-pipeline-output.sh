@@ -0,0 +1,13 @@
+#!/bin/sh
+# Pipeline equivalence check: runs a fixed workload through the regular mode and "java Main pipeline"
+# and fails if their outputs differ in any byte.
+set -e
+cd "$(dirname "$0")"
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+javac -d "$out" src/Main.java
+java -cp "$out" Main generate --accounts 1000 --commands 50000 --seed 42 --out "$out/workload.txt"
+java -cp "$out" Main < "$out/workload.txt" > "$out/regular.txt"
+java -cp "$out" Main pipeline < "$out/workload.txt" > "$out/pipeline.txt"
+cmp "$out/regular.txt" "$out/pipeline.txt"
+echo "Pipeline output matches the regular mode ($(wc -l < "$out/regular.txt") lines)."
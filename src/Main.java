@@ -1,7 +1,43 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Locale;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 /**
  * @author Klimentii Chistyakov
@@ -11,52 +47,156 @@ public class Main {
      * Main method with all operations
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            runTool(args);
+            return;
+        }
         BankSystemProxyWithLogging proxy = BankSystemProxyWithLogging.getInstance();
         Scanner sc = new Scanner(System.in);
+        ArrayList<String[]> commands = readCommands(sc);
+        for (String[] words : commands) {
+            execute(proxy, words);
+        }
+    }
+
+    /**
+     * Method for running one of the supporting tools instead of the regular input processing
+     *
+     * @param args Command line arguments, where the first one is the name of the tool
+     * @see WorkloadGenerator
+     * @see LoadDriver
+     * @see Pipeline
+     * @see ReplicationPrimary
+     * @see ReplicationReplica
+     * @see AllocationProfiler
+     * @see AccountImporter
+     */
+    static void runTool(String[] args) {
+        HashMap<String, String> options = parseOptions(args, 1);
+        switch (args[0]) {
+            case "generate" -> WorkloadGenerator.run(options);
+            case "load" -> LoadDriver.run(options);
+            case "pipeline" -> runPipeline();
+            case "primary" -> ReplicationPrimary.run(options);
+            case "replica" -> ReplicationReplica.run(options);
+            case "alloc" -> AllocationProfiler.run(options);
+            case "import" -> AccountImporter.run(options);
+            default -> throw new IllegalArgumentException("Unknown tool: " + args[0]);
+        }
+    }
+
+    /**
+     * Method for processing the standard input in the pipelined mode, with the same output as the regular mode
+     *
+     * @see Pipeline
+     */
+    static void runPipeline() {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        final int N;
+        try {
+            N = Integer.parseInt(in.readLine().trim());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Pipeline.run(new Iterator<>() {
+            private int read;
+
+            @Override
+            public boolean hasNext() {
+                return read < N;
+            }
+
+            @Override
+            public String next() {
+                try {
+                    String line = in.readLine();
+                    if (line == null) {
+                        throw new NoSuchElementException("No line found");
+                    }
+                    read++;
+                    return line;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }, System.out);
+    }
+
+    /**
+     * Method for parsing command line options of form "--name value"
+     *
+     * @param args Command line arguments
+     * @param from Index of the first option
+     * @return Map from option name (without dashes) to its value
+     */
+    static HashMap<String, String> parseOptions(String[] args, int from) {
+        HashMap<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected \"--name value\" option, got: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    /**
+     * Method for reading the input: number of commands followed by one command per line
+     *
+     * @param sc Scanner to read from
+     * @return List of commands split into words
+     */
+    static ArrayList<String[]> readCommands(Scanner sc) {
         final int N = sc.nextInt();
-        ArrayList<String[]> commands = new ArrayList<>();
+        ArrayList<String[]> commands = new ArrayList<>(N);
         sc.nextLine();
         for (int i = 0; i < N; i++) {
             commands.add(sc.nextLine().split("\\s+"));
         }
-        //Loop for checking which command to execute
-        for (int i = 0; i < N; i++) {
-            String[] words = commands.get(i);
-            switch (words[0]) {
-                case "Create" -> {
-                    String accountType = words[2];
-                    String accountName = words[3];
-                    String initialDeposit = words[4];
-                    proxy.createAccount(accountName, Double.parseDouble(initialDeposit), accountType);
-                }
-                case "Deposit" -> {
-                    String accountName = words[1];
-                    String depositValue = words[2];
-                    proxy.deposit(accountName, Double.parseDouble(depositValue));
-                }
-                case "Withdraw" -> {
-                    String accountName = words[1];
-                    String value = words[2];
-                    proxy.withdraw(accountName, Double.parseDouble(value));
-                }
-                case "Transfer" -> {
-                    String accountName = words[1];
-                    String targetName = words[2];
-                    String value = words[3];
-                    proxy.transfer(accountName, targetName, Double.parseDouble(value));
-                }
-                case "View" -> {
-                    String accountName = words[1];
-                    proxy.viewAccount(accountName);
-                }
-                case "Activate" -> {
-                    String accountName = words[1];
-                    proxy.activateAccount(accountName);
-                }
-                case "Deactivate" -> {
-                    String accountName = words[1];
-                    proxy.deactivateAccount(accountName);
-                }
+        return commands;
+    }
+
+    /**
+     * Method for checking which command to execute and executing it
+     *
+     * @param proxy Proxy to execute the command through
+     * @param words Command split into words
+     */
+    static void execute(BankSystemProxyWithLogging proxy, String[] words) {
+        switch (words[0]) {
+            case "Create" -> {
+                String accountType = words[2];
+                String accountName = words[3];
+                String initialDeposit = words[4];
+                proxy.createAccount(accountName, Double.parseDouble(initialDeposit), accountType);
+            }
+            case "Deposit" -> {
+                String accountName = words[1];
+                String depositValue = words[2];
+                proxy.deposit(accountName, Double.parseDouble(depositValue));
+            }
+            case "Withdraw" -> {
+                String accountName = words[1];
+                String value = words[2];
+                proxy.withdraw(accountName, Double.parseDouble(value));
+            }
+            case "Transfer" -> {
+                String accountName = words[1];
+                String targetName = words[2];
+                String value = words[3];
+                proxy.transfer(accountName, targetName, Double.parseDouble(value));
+            }
+            case "View" -> {
+                String accountName = words[1];
+                proxy.viewAccount(accountName);
+            }
+            case "Activate" -> {
+                String accountName = words[1];
+                proxy.activateAccount(accountName);
+            }
+            case "Deactivate" -> {
+                String accountName = words[1];
+                proxy.deactivateAccount(accountName);
             }
         }
     }
@@ -147,7 +287,18 @@ class BankSystem {
      * @param type   Type of the operation (Deposit, Transfer, Withdraw, Initial Deposit)
      */
     public void addOperationInHistory(String name, double amount, String type) {
-        accounts.get(name).addHistory(type + ValueFormat.format(amount));
+        accounts.get(name).addHistory(historyEntry(amount, type));
+    }
+
+    /**
+     * Method for formatting an operation for account history
+     *
+     * @param amount Amount of money involved into operation
+     * @param type   Type of the operation (Deposit, Transfer, Withdraw, Initial Deposit)
+     * @return String formatted operation
+     */
+    public static String historyEntry(double amount, String type) {
+        return type + ValueFormat.format(amount);
     }
 
     /**
@@ -171,6 +322,28 @@ class BankSystem {
         }
     }
 
+    /**
+     * Method for adding already built accounts in bulk. The storage is resized once up front,
+     * instead of rehashing as it grows. Accounts with existing names replace the old ones, as in createAccount.
+     *
+     * @param chunks Lists of accounts, added in order
+     * @param count  Total number of accounts in all chunks
+     * @return Number of added accounts, not counting the replaced ones
+     * @see AccountImporter
+     */
+    public int importAccounts(List<ArrayList<Account>> chunks, int count) {
+        HashMap<String, Account> resized = new HashMap<>((int) ((accounts.size() + count) / 0.75) + 1);
+        resized.putAll(accounts);
+        for (ArrayList<Account> chunk : chunks) {
+            for (Account account : chunk) {
+                resized.put(account.getAccountName(), account);
+            }
+        }
+        int added = resized.size() - accounts.size();
+        accounts = resized;
+        return added;
+    }
+
     /**
      * Method for showing account data
      *
@@ -232,6 +405,8 @@ class ValueFormat {
  * @see BankSystem
  */
 class BankSystemProxyWithLogging {
+    private static final String INITIAL_DEPOSIT = "Initial Deposit $";
+
     /**
      * Field to get a BankSystem instance
      */
@@ -256,7 +431,19 @@ class BankSystemProxyWithLogging {
      * @see Account
      */
     private void logInitialDeposit(String name, double value) {
-        bankSystem.addOperationInHistory(name, value, "Initial Deposit $");
+        bankSystem.addOperationInHistory(name, value, INITIAL_DEPOSIT);
+    }
+
+    /**
+     * Method for formatting the initial deposit history entry of an account, that is created outside of
+     * createAccount
+     *
+     * @param value Initial balance
+     * @return String formatted operation
+     * @see AccountImporter
+     */
+    public static String initialDepositEntry(double value) {
+        return BankSystem.historyEntry(value, INITIAL_DEPOSIT);
     }
 
     /**
@@ -349,6 +536,20 @@ class BankSystemProxyWithLogging {
         System.out.println("A new " + type + " account created for " + name + " with an initial balance of $" + ValueFormat.format(initialDeposit) + ".");
     }
 
+    /**
+     * Method for adding accounts in bulk. Accounts must already have their initial deposit logged
+     * with initialDepositEntry.
+     *
+     * @param chunks Lists of accounts, added in order
+     * @param count  Total number of accounts in all chunks
+     * @return Number of added accounts, not counting the replaced ones
+     * @see BankSystem
+     * @see AccountImporter
+     */
+    public int importAccounts(List<ArrayList<Account>> chunks, int count) {
+        return bankSystem.importAccounts(chunks, count);
+    }
+
     /**
      * Method for viewing an account details
      *
@@ -752,4 +953,1443 @@ class DeactivatedState implements AccountState {
     public String stateName() {
         return "Inactive";
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Class for sampling ranks from a Zipfian distribution: rank i is chosen with probability proportional to
+ * 1 / (i + 1)^skew. Skew 0 gives a uniform distribution, bigger skew concentrates the traffic on a few ranks.
+ *
+ * @see WorkloadGenerator
+ */
+class ZipfDistribution {
+    private final double[] cdf;
+
+    public ZipfDistribution(int size, double skew) {
+        cdf = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < size; i++) {
+            cdf[i] /= sum;
+        }
+    }
+
+    /**
+     * Method for sampling a rank
+     *
+     * @param random Source of randomness
+     * @return Rank from 0 (the most popular) to size - 1
+     */
+    public int sample(Random random) {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return Math.min(index, cdf.length - 1);
+    }
+}
+
+/**
+ * Class for generating synthetic command streams. The stream starts with creation of the account pool,
+ * followed by the configured number of commands with the configured mix. Accounts are picked from the pool
+ * with Zipfian skew, accounts created by the mix itself get fresh names and are not picked afterwards.
+ * <p>
+ * Options: --accounts (pool size), --commands (number of commands after the pool creation), --skew,
+ * --mix (e.g. "Create=1,Deposit=30,Withdraw=25,Transfer=20,View=20,Activate=2,Deactivate=2"),
+ * --min-amount, --max-amount, --seed and --out (file to write to, standard output by default).
+ *
+ * @see ZipfDistribution
+ * @see LoadDriver
+ */
+class WorkloadGenerator {
+    static final String[] COMMANDS = {"Create", "Deposit", "Withdraw", "Transfer", "View", "Activate",
+            "Deactivate"};
+    private static final String[] ACCOUNT_TYPES = {"Savings", "Checking", "Business"};
+
+    private final int accounts;
+    private final int commands;
+    private final double skew;
+    private final double minAmount;
+    private final double maxAmount;
+    private final long seed;
+    private final double[] mix = {1, 30, 25, 20, 20, 2, 2};
+
+    public WorkloadGenerator(HashMap<String, String> options) {
+        accounts = Integer.parseInt(options.getOrDefault("accounts", "1000"));
+        commands = Integer.parseInt(options.getOrDefault("commands", "100000"));
+        skew = Double.parseDouble(options.getOrDefault("skew", "0.99"));
+        minAmount = Double.parseDouble(options.getOrDefault("min-amount", "1"));
+        maxAmount = Double.parseDouble(options.getOrDefault("max-amount", "1000"));
+        seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        if (options.containsKey("mix")) {
+            Arrays.fill(mix, 0);
+            for (String entry : options.get("mix").split(",")) {
+                String[] pair = entry.split("=");
+                int index = Arrays.asList(COMMANDS).indexOf(pair[0]);
+                if (index < 0 || pair.length != 2) {
+                    throw new IllegalArgumentException("Bad mix entry: " + entry);
+                }
+                mix[index] = Double.parseDouble(pair[1]);
+                if (!(mix[index] >= 0) || Double.isInfinite(mix[index])) {
+                    throw new IllegalArgumentException("Bad mix entry: " + entry);
+                }
+            }
+            if (Arrays.stream(mix).sum() <= 0) {
+                throw new IllegalArgumentException("Bad mix: at least one weight must be positive");
+            }
+        }
+        if (accounts < 2) {
+            throw new IllegalArgumentException("At least 2 accounts are needed");
+        }
+    }
+
+    /**
+     * Method for running the generator from the command line
+     *
+     * @param options Parsed command line options
+     */
+    public static void run(HashMap<String, String> options) {
+        WorkloadGenerator generator = new WorkloadGenerator(options);
+        if (options.containsKey("out")) {
+            try (PrintStream out = new PrintStream(new BufferedOutputStream(
+                    new FileOutputStream(options.get("out"))))) {
+                generator.write(out);
+            } catch (FileNotFoundException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            generator.write(System.out);
+        }
+    }
+
+    /**
+     * Method for generating the command stream in memory
+     *
+     * @return List of commands split into words, in the same form as read by Main
+     */
+    public ArrayList<String[]> generate() {
+        ArrayList<String[]> result = new ArrayList<>(accounts + commands);
+        generate(result::add);
+        return result;
+    }
+
+    /**
+     * Method for writing the command stream in the input format of Main, one command at a time
+     *
+     * @param out Stream to write to
+     */
+    public void write(PrintStream out) {
+        out.println(accounts + commands);
+        generate(words -> out.println(String.join(" ", words)));
+        out.flush();
+    }
+
+    /**
+     * Method for generating the command stream
+     *
+     * @param sink Receiver of the commands split into words, called in order
+     */
+    private void generate(Consumer<String[]> sink) {
+        Random random = new Random(seed);
+        ZipfDistribution zipf = new ZipfDistribution(accounts, skew);
+        double[] cumulativeMix = new double[mix.length];
+        double total = 0;
+        for (int i = 0; i < mix.length; i++) {
+            total += mix[i];
+            cumulativeMix[i] = total;
+        }
+        for (int i = 0; i < accounts; i++) {
+            sink.accept(create(random, "A" + i));
+        }
+        int created = 0;
+        for (int i = 0; i < commands; i++) {
+            double choice = random.nextDouble() * total;
+            int command = 0;
+            while (command < cumulativeMix.length - 1 && choice >= cumulativeMix[command]) {
+                command++;
+            }
+            String name = "A" + zipf.sample(random);
+            switch (COMMANDS[command]) {
+                case "Create" -> sink.accept(create(random, "N" + created++));
+                case "Deposit", "Withdraw" -> sink.accept(new String[]{COMMANDS[command], name, amount(random)});
+                case "Transfer" -> {
+                    String target = name;
+                    while (target.equals(name)) {
+                        target = "A" + zipf.sample(random);
+                    }
+                    sink.accept(new String[]{"Transfer", name, target, amount(random)});
+                }
+                default -> sink.accept(new String[]{COMMANDS[command], name});
+            }
+        }
+    }
+
+    private String[] create(Random random, String name) {
+        return new String[]{"Create", "Account", ACCOUNT_TYPES[random.nextInt(ACCOUNT_TYPES.length)], name,
+                amount(random)};
+    }
+
+    private String amount(Random random) {
+        return ValueFormat.format(minAmount + random.nextDouble() * (maxAmount - minAmount));
+    }
+}
+
+/**
+ * Class for driving the bank system in-process with a workload and measuring its performance.
+ * Output of the commands is discarded, the report with sustained throughput and p50/p99/p999 latency
+ * is printed to the standard output. Latency is the time spent executing a command in every mode,
+ * the pipeline mode additionally reports the time commands spend waiting in its queues.
+ * <p>
+ * Options: --in (file in the input format of Main, otherwise the workload is generated with the
+ * WorkloadGenerator options) and --mode (engine mode: "direct" by default or "pipeline").
+ *
+ * @see WorkloadGenerator
+ * @see Pipeline
+ */
+class LoadDriver {
+
+    /**
+     * Method for running the load driver from the command line
+     *
+     * @param options Parsed command line options
+     */
+    public static void run(HashMap<String, String> options) {
+        ArrayList<String[]> commands = loadCommands(options);
+        String mode = options.getOrDefault("mode", "direct");
+        long[] latencies = new long[commands.size()];
+        long[] queueTimes = null;
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long start = System.nanoTime();
+        try {
+            switch (mode) {
+                case "direct" -> runDirect(commands, latencies);
+                case "pipeline" -> {
+                    queueTimes = new long[commands.size()];
+                    Pipeline.runCommands(commands.iterator(), System.out, latencies, queueTimes);
+                }
+                default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+            }
+        } finally {
+            System.setOut(console);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("Mode: " + mode + ", Commands: " + latencies.length + ", Time: "
+                + ValueFormat.format(elapsed / 1e9) + " s, Throughput: "
+                + ValueFormat.format(latencies.length / (elapsed / 1e9)) + " commands/s");
+        report("Latency", latencies);
+        if (queueTimes != null) {
+            report("Queueing", queueTimes);
+        }
+    }
+
+    /**
+     * Method for getting the workload: from the file given with --in, or from the generator otherwise
+     *
+     * @param options Parsed command line options
+     * @return List of commands split into words
+     */
+    static ArrayList<String[]> loadCommands(HashMap<String, String> options) {
+        if (!options.containsKey("in")) {
+            return new WorkloadGenerator(options).generate();
+        }
+        try (Scanner sc = new Scanner(new BufferedInputStream(new FileInputStream(options.get("in"))))) {
+            return Main.readCommands(sc);
+        } catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Method for executing commands one by one on the calling thread
+     *
+     * @param commands  List of commands split into words
+     * @param latencies Array to store latency of each command in nanoseconds
+     */
+    private static void runDirect(ArrayList<String[]> commands, long[] latencies) {
+        BankSystemProxyWithLogging proxy = BankSystemProxyWithLogging.getInstance();
+        for (int i = 0; i < commands.size(); i++) {
+            long start = System.nanoTime();
+            Main.execute(proxy, commands.get(i));
+            latencies[i] = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Method for printing percentiles of measured times
+     *
+     * @param label Name of the measurement
+     * @param times Time of each command in nanoseconds
+     */
+    private static void report(String label, long[] times) {
+        Arrays.sort(times);
+        System.out.println(label + ": p50 " + percentile(times, 0.5) + " ns, p99 " + percentile(times, 0.99)
+                + " ns, p999 " + percentile(times, 0.999) + " ns, max "
+                + (times.length == 0 ? 0 : times[times.length - 1]) + " ns");
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+}
+
+/**
+ * Class for executing commands in three stages, each on its own thread: parse, execute and render.
+ * Stages pass batches of commands through bounded queues, so a fast stage blocks when the next one falls behind,
+ * and the throughput is limited by the slowest stage instead of the sum of all three.
+ * The order of the output is the same as in the sequential mode. If a command fails, the output of the commands
+ * before it is still written, and the same exception is rethrown after all stages stop.
+ * check-pipeline-output.sh compares the output with the sequential mode.
+ *
+ * @see CapturingPrintStream
+ */
+class Pipeline {
+    private static final int BATCH_SIZE = 256;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final Batch END = new Batch(0);
+
+    /**
+     * Batch of commands, that is passed from stage to stage
+     */
+    private static final class Batch {
+        private final String[][] commands;
+        private final long[] submitted;
+        private final long[] service;
+        private int size;
+        private int firstIndex;
+        private byte[] output;
+
+        private Batch(int capacity) {
+            commands = new String[capacity][];
+            submitted = new long[capacity];
+            service = new long[capacity];
+        }
+    }
+
+    private final ArrayBlockingQueue<Batch> parsed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ArrayBlockingQueue<Batch> executed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Iterator<String[]> commands;
+    private final PrintStream out;
+    private final long[] serviceTimes;
+    private final long[] queueTimes;
+    private final CapturingPrintStream capture = new CapturingPrintStream();
+    private final Thread[] threads;
+    private Throwable failure;
+
+    private Pipeline(Iterator<String[]> commands, PrintStream out, long[] serviceTimes, long[] queueTimes) {
+        this.commands = commands;
+        this.out = out;
+        this.serviceTimes = serviceTimes;
+        this.queueTimes = queueTimes;
+        threads = new Thread[]{stage("parse", 0, this::parse), stage("execute", 1, this::execute),
+                stage("render", 2, this::render)};
+    }
+
+    /**
+     * Method for running all commands through the pipeline. Lines are read and split into words
+     * on the parse stage.
+     *
+     * @param lines Commands, one per line
+     * @param out   Stream to write the output to
+     */
+    public static void run(Iterator<String> lines, PrintStream out) {
+        Iterator<String[]> commands = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return lines.hasNext();
+            }
+
+            @Override
+            public String[] next() {
+                return lines.next().split("\\s+");
+            }
+        };
+        new Pipeline(commands, out, null, null).run();
+    }
+
+    /**
+     * Method for running already split commands through the pipeline and measuring them. Service time is the time
+     * spent executing the command, comparable with the latency of the sequential mode. Queueing time is the rest of
+     * the time from taking the command to writing its output, spent waiting for the other stages.
+     *
+     * @param commands     Commands split into words
+     * @param out          Stream to write the output to
+     * @param serviceTimes Array to store service time of each command in nanoseconds, or null
+     * @param queueTimes   Array to store queueing time of each command in nanoseconds, or null
+     */
+    public static void runCommands(Iterator<String[]> commands, PrintStream out, long[] serviceTimes,
+                                   long[] queueTimes) {
+        new Pipeline(commands, out, serviceTimes, queueTimes).run();
+    }
+
+    private void run() {
+        PrintStream previous = System.out;
+        System.setOut(capture);
+        try {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        } finally {
+            System.setOut(previous);
+        }
+        synchronized (this) {
+            if (failure instanceof RuntimeException e) {
+                throw e;
+            }
+            if (failure instanceof Error e) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Method for creating a stage thread. When a stage fails, the stages before it are interrupted, because
+     * nothing consumes their batches anymore. The stages after it finish the batches already sent to them.
+     *
+     * @param name  Name of the stage
+     * @param index Position of the stage in the pipeline
+     * @param stage Body of the stage
+     * @return Thread, that is not started yet
+     */
+    private Thread stage(String name, int index, Runnable stage) {
+        return new Thread(() -> {
+            try {
+                stage.run();
+            } catch (Throwable e) {
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                for (int i = 0; i < index; i++) {
+                    threads[i].interrupt();
+                }
+            }
+        }, "pipeline-" + name);
+    }
+
+    /**
+     * Parse stage: takes commands from the input and groups them into batches
+     */
+    private void parse() {
+        try {
+            int index = 0;
+            while (commands.hasNext()) {
+                Batch batch = new Batch(BATCH_SIZE);
+                batch.firstIndex = index;
+                while (batch.size < BATCH_SIZE && commands.hasNext()) {
+                    batch.submitted[batch.size] = System.nanoTime();
+                    batch.commands[batch.size++] = commands.next();
+                }
+                index += batch.size;
+                put(parsed, batch);
+            }
+        } finally {
+            putQuietly(parsed, END);
+        }
+    }
+
+    /**
+     * Execute stage: runs commands against the bank system and collects their output.
+     * If a command fails, the output of the commands before it is passed on before rethrowing.
+     */
+    private void execute() {
+        BankSystemProxyWithLogging proxy = BankSystemProxyWithLogging.getInstance();
+        Batch batch = null;
+        int completed = 0;
+        try {
+            while ((batch = take(parsed)) != END) {
+                for (completed = 0; completed < batch.size; completed++) {
+                    long start = System.nanoTime();
+                    Main.execute(proxy, batch.commands[completed]);
+                    batch.service[completed] = System.nanoTime() - start;
+                    batch.commands[completed] = null;
+                }
+                batch.output = capture.takeBytes();
+                put(executed, batch);
+                batch = null;
+            }
+        } catch (RuntimeException e) {
+            if (batch != null && batch != END) {
+                batch.size = completed;
+                batch.output = capture.takeBytes();
+                putQuietly(executed, batch);
+            }
+            throw e;
+        } finally {
+            putQuietly(executed, END);
+        }
+    }
+
+    /**
+     * Render stage: encodes and writes the output
+     */
+    private void render() {
+        Batch batch;
+        while ((batch = take(executed)) != END) {
+            out.write(batch.output, 0, batch.output.length);
+            long now = System.nanoTime();
+            for (int i = 0; i < batch.size; i++) {
+                if (serviceTimes != null) {
+                    serviceTimes[batch.firstIndex + i] = batch.service[i];
+                }
+                if (queueTimes != null) {
+                    queueTimes[batch.firstIndex + i] = now - batch.submitted[i] - batch.service[i];
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void put(ArrayBlockingQueue<Batch> queue, Batch batch) {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Pipeline interrupted", e);
+        }
+    }
+
+    /**
+     * Method for passing a batch on while the stage is stopping. Does nothing if the stage was interrupted,
+     * because then the next stage has failed and nothing will take the batch.
+     *
+     * @param queue Queue to the next stage
+     * @param batch Batch to pass
+     */
+    private static void putQuietly(ArrayBlockingQueue<Batch> queue, Batch batch) {
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Batch take(ArrayBlockingQueue<Batch> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Pipeline interrupted", e);
+        }
+    }
+}
+
+/**
+ * Class for collecting everything printed by the bank system in memory, so that writing it can be done
+ * on a different thread. All print methods work as in a regular PrintStream, the bytes are kept in a buffer
+ * until taken.
+ *
+ * @see Pipeline
+ * @see ReplicationReplica
+ */
+class CapturingPrintStream extends PrintStream {
+    private final ByteArrayOutputStream buffer;
+
+    public CapturingPrintStream() {
+        this(new ByteArrayOutputStream());
+    }
+
+    private CapturingPrintStream(ByteArrayOutputStream buffer) {
+        super(buffer, false, Charset.defaultCharset());
+        this.buffer = buffer;
+    }
+
+    /**
+     * Method for taking everything printed since the previous call
+     *
+     * @return Printed bytes in the default charset, the same as System.out writes
+     */
+    public byte[] takeBytes() {
+        flush();
+        byte[] bytes = buffer.toByteArray();
+        buffer.reset();
+        return bytes;
+    }
+
+    /**
+     * Method for taking everything printed since the previous call
+     *
+     * @return Printed text
+     */
+    public String take() {
+        return new String(takeBytes(), Charset.defaultCharset());
+    }
+}
+
+/**
+ * Class for the primary side of the replication. The primary executes all commands itself, appends every
+ * executed mutation (any command except View) to the replication log and streams the log over a local TCP socket
+ * to the connected replicas. View traffic of other clients is meant to go to the replicas, which serve it
+ * without involving the primary.
+ * <p>
+ * Replication lag is the number of log entries the slowest replica has not acknowledged yet. The primary stops
+ * executing new mutations while the lag is above the limit. The lag is available through lag() and is reported
+ * to the standard error periodically and at the end.
+ * <p>
+ * The log keeps at least the last "retention" entries and everything not yet acknowledged by a connected replica,
+ * older entries are dropped. A replica asking to continue from a dropped entry is rejected.
+ * <p>
+ * Protocol (one message per line): replica sends "SYNC seq" after connecting, then "ACK seq";
+ * primary sends "seq command" for log entries after the synchronized sequence number,
+ * or "ERROR reason" if it cannot serve the synchronization.
+ * <p>
+ * Options: --port, --max-lag (10000 by default), --retention (1000000 by default, not less than --max-lag),
+ * --metrics-interval (milliseconds between lag reports, 1000 by default, 0 to disable)
+ * and --replicas (number of replicas to wait for before starting, 0 by default).
+ *
+ * @see ReplicationReplica
+ */
+class ReplicationPrimary {
+    private final ArrayList<String> log = new ArrayList<>();
+    private final ArrayList<ReplicaSession> sessions = new ArrayList<>();
+    private final ServerSocket server;
+    private final long maxLag;
+    private final long retention;
+    private long dropped;
+    private long maxObservedLag;
+
+    /**
+     * Connection to one replica
+     */
+    private final class ReplicaSession {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final BufferedWriter writer;
+        private long sent;
+        private long acked;
+        private boolean closed;
+
+        private ReplicaSession(Socket socket) throws IOException {
+            this.socket = socket;
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Method for reading messages from the replica
+         */
+        private void receive() {
+            try {
+                String[] sync = reader.readLine().split(" ");
+                if (!sync[0].equals("SYNC") || sync.length != 2) {
+                    throw new IOException("Bad synchronization request: " + String.join(" ", sync));
+                }
+                long from = Long.parseLong(sync[1]);
+                synchronized (ReplicationPrimary.this) {
+                    if (from < dropped || from > lastSequence()) {
+                        writer.write("ERROR Cannot continue from sequence " + from + ", log has entries from "
+                                + (dropped + 1) + " to " + lastSequence());
+                        writer.newLine();
+                        writer.flush();
+                        throw new IOException("Rejected synchronization from sequence " + from);
+                    }
+                    sent = from;
+                    acked = from;
+                    sessions.add(this);
+                    ReplicationPrimary.this.notifyAll();
+                }
+                System.err.println("Replica " + socket.getRemoteSocketAddress() + " synchronizing from " + from);
+                startDaemon("replication-sender", this::send);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] message = line.split(" ");
+                    if (message[0].equals("ACK")) {
+                        synchronized (ReplicationPrimary.this) {
+                            acked = Long.parseLong(message[1]);
+                            ReplicationPrimary.this.notifyAll();
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Replica " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Method for streaming log entries to the replica
+         */
+        private void send() {
+            ArrayList<String> lines = new ArrayList<>();
+            try {
+                while (true) {
+                    synchronized (ReplicationPrimary.this) {
+                        while (!closed && sent >= lastSequence()) {
+                            ReplicationPrimary.this.wait();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        while (sent < lastSequence() && lines.size() < 1024) {
+                            sent++;
+                            lines.add(sent + " " + log.get((int) (sent - dropped - 1)));
+                        }
+                    }
+                    for (String line : lines) {
+                        writer.write(line);
+                        writer.newLine();
+                    }
+                    writer.flush();
+                    lines.clear();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        private void close() {
+            synchronized (ReplicationPrimary.this) {
+                closed = true;
+                sessions.remove(this);
+                ReplicationPrimary.this.notifyAll();
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public ReplicationPrimary(int port, long maxLag, long retention) throws IOException {
+        if (retention < maxLag) {
+            throw new IllegalArgumentException("Retention must not be less than the maximum lag");
+        }
+        this.maxLag = maxLag;
+        this.retention = retention;
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        startDaemon("replication-acceptor", this::accept);
+    }
+
+    /**
+     * Method for running the primary from the command line, reading commands from the standard input
+     *
+     * @param options Parsed command line options
+     */
+    public static void run(HashMap<String, String> options) {
+        BankSystemProxyWithLogging proxy = BankSystemProxyWithLogging.getInstance();
+        try {
+            ReplicationPrimary primary = new ReplicationPrimary(Integer.parseInt(options.get("port")),
+                    Long.parseLong(options.getOrDefault("max-lag", "10000")),
+                    Long.parseLong(options.getOrDefault("retention", "1000000")));
+            long interval = Long.parseLong(options.getOrDefault("metrics-interval", "1000"));
+            if (interval > 0) {
+                startDaemon("replication-metrics", () -> primary.reportMetrics(interval));
+            }
+            primary.awaitReplicas(Integer.parseInt(options.getOrDefault("replicas", "0")));
+            for (String[] words : Main.readCommands(new Scanner(System.in))) {
+                primary.execute(proxy, words);
+            }
+            primary.shutdown(10_000);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Method for executing a command and appending it to the log if it is a mutation
+     *
+     * @param proxy Proxy to execute the command through
+     * @param words Command split into words
+     * @throws InterruptedException If interrupted while waiting for the replicas to catch up
+     */
+    public void execute(BankSystemProxyWithLogging proxy, String[] words) throws InterruptedException {
+        Main.execute(proxy, words);
+        if (!words[0].equals("View")) {
+            append(String.join(" ", words));
+        }
+    }
+
+    /**
+     * Method for appending an entry to the log, waiting while the lag is above the limit
+     *
+     * @param entry Command to replicate
+     * @throws InterruptedException If interrupted while waiting for the replicas to catch up
+     */
+    private synchronized void append(String entry) throws InterruptedException {
+        log.add(entry);
+        notifyAll();
+        maxObservedLag = Math.max(maxObservedLag, lag());
+        while (lag() > maxLag) {
+            wait();
+        }
+        trim();
+    }
+
+    /**
+     * Method for dropping entries older than the retention, that all connected replicas have acknowledged.
+     * Entries are removed in bulk once they make up half of the log, so each entry is moved at most once.
+     */
+    private void trim() {
+        long keepFrom = lastSequence() - retention;
+        for (ReplicaSession session : sessions) {
+            keepFrom = Math.min(keepFrom, session.acked);
+        }
+        long drop = keepFrom - dropped;
+        if (drop > 0 && drop >= log.size() / 2) {
+            log.subList(0, (int) drop).clear();
+            dropped += drop;
+        }
+    }
+
+    /**
+     * @return Sequence number of the last log entry
+     */
+    public synchronized long lastSequence() {
+        return dropped + log.size();
+    }
+
+    /**
+     * Method for getting the replication lag
+     *
+     * @return Number of log entries not yet acknowledged by the slowest replica, 0 if there are no replicas
+     */
+    public synchronized long lag() {
+        long lag = 0;
+        for (ReplicaSession session : sessions) {
+            lag = Math.max(lag, lastSequence() - session.acked);
+        }
+        return lag;
+    }
+
+    /**
+     * @return Maximum replication lag observed so far
+     */
+    public synchronized long maxObservedLag() {
+        return maxObservedLag;
+    }
+
+    /**
+     * @return Replication state in a form suitable for logs
+     */
+    public synchronized String metrics() {
+        return "Replication: replicas " + sessions.size() + ", sequence " + lastSequence() + ", retained from "
+                + (dropped + 1) + ", lag " + lag() + ", max lag " + maxObservedLag;
+    }
+
+    /**
+     * Method for waiting until the given number of replicas is connected
+     *
+     * @param count Number of replicas
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized void awaitReplicas(int count) throws InterruptedException {
+        while (sessions.size() < count) {
+            wait();
+        }
+    }
+
+    /**
+     * Method for waiting until the replicas catch up, reporting the metrics and closing all connections
+     *
+     * @param timeoutMillis Maximum time to wait for the replicas
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        ArrayList<ReplicaSession> open;
+        synchronized (this) {
+            while (lag() > 0 && System.currentTimeMillis() < deadline) {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            System.err.println(metrics());
+            open = new ArrayList<>(sessions);
+        }
+        try {
+            server.close();
+        } catch (IOException ignored) {
+        }
+        for (ReplicaSession session : open) {
+            session.close();
+        }
+    }
+
+    /**
+     * Method for printing the metrics to the standard error periodically, until the server is closed
+     *
+     * @param intervalMillis Time between reports
+     */
+    private void reportMetrics(long intervalMillis) {
+        try {
+            while (!server.isClosed()) {
+                Thread.sleep(intervalMillis);
+                System.err.println(metrics());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                ReplicaSession session = new ReplicaSession(server.accept());
+                startDaemon("replication-receiver", session::receive);
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    System.err.println("Replication accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
+
+/**
+ * Class for the replica side of the replication. The replica applies the log entries streamed by the primary to its
+ * own bank system. After losing the connection it reconnects and asks the primary to continue from the last applied
+ * sequence number. If the primary no longer has that part of the log, or an entry cannot be applied, the replica
+ * prints an error, stops serving clients and exits with status 1.
+ * <p>
+ * The replica serves View requests of its own clients on a separate local port, one request per line:
+ * "View name" answers with the account details as of the last applied entry, "View name seq" first waits
+ * (up to the view timeout) until the entry seq is applied, so a client can read its own writes.
+ * "Sequence" answers with the last applied sequence number.
+ * <p>
+ * Options: --host ("localhost" by default), --port, --serve-port (port for View clients, not served if absent),
+ * --view-timeout (milliseconds, 5000 by default) and --retry-delay (milliseconds between reconnection attempts,
+ * 1000 by default).
+ *
+ * @see ReplicationPrimary
+ */
+class ReplicationReplica {
+    private static final int ACK_INTERVAL = 1024;
+
+    private final BankSystemProxyWithLogging proxy = BankSystemProxyWithLogging.getInstance();
+    private final CapturingPrintStream capture = new CapturingPrintStream();
+    private final long viewTimeout;
+    private long applied;
+
+    public ReplicationReplica(long viewTimeout) {
+        this.viewTimeout = viewTimeout;
+    }
+
+    /**
+     * Method for running the replica from the command line
+     *
+     * @param options Parsed command line options
+     */
+    public static void run(HashMap<String, String> options) {
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.get("port"));
+        long retryDelay = Long.parseLong(options.getOrDefault("retry-delay", "1000"));
+        ReplicationReplica replica = new ReplicationReplica(
+                Long.parseLong(options.getOrDefault("view-timeout", "5000")));
+        System.setOut(replica.capture);
+        ServerSocket server = null;
+        if (options.containsKey("serve-port")) {
+            try {
+                server = new ServerSocket(Integer.parseInt(options.get("serve-port")), 50,
+                        InetAddress.getLoopbackAddress());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            ServerSocket clients = server;
+            ReplicationPrimary.startDaemon("replica-acceptor", () -> replica.accept(clients));
+        }
+        try {
+            while (true) {
+                try {
+                    replica.replicate(host, port);
+                    System.err.println("Primary closed the connection at sequence " + replica.appliedSequence());
+                } catch (IOException e) {
+                    System.err.println("Replication failed at sequence " + replica.appliedSequence() + ": "
+                            + e.getMessage());
+                }
+                Thread.sleep(retryDelay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            System.err.println("Error: Replica stopped at sequence " + replica.appliedSequence() + ": "
+                    + e.getMessage());
+            if (server != null) {
+                try {
+                    server.close();
+                } catch (IOException ignored) {
+                }
+            }
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Method for connecting to the primary and applying the log until the connection is closed
+     *
+     * @param host Host of the primary
+     * @param port Port of the primary
+     * @throws IOException           If the connection fails or the log has a gap
+     * @throws IllegalStateException If the primary cannot continue from the last applied sequence number
+     */
+    public void replicate(String host, int port) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            long lastAck = appliedSequence();
+            writer.write("SYNC " + lastAck);
+            writer.newLine();
+            writer.flush();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("ERROR ")) {
+                    throw new IllegalStateException("Primary rejected synchronization: " + line.substring(6));
+                }
+                int space = line.indexOf(' ');
+                long sequence = apply(Long.parseLong(line.substring(0, space)), line.substring(space + 1));
+                if (!reader.ready() || sequence - lastAck >= ACK_INTERVAL) {
+                    writer.write("ACK " + sequence);
+                    writer.newLine();
+                    writer.flush();
+                    lastAck = sequence;
+                }
+            }
+        }
+    }
+
+    /**
+     * Method for applying one log entry
+     *
+     * @param sequence Sequence number of the entry
+     * @param command  Command to execute
+     * @return Sequence number of the applied entry
+     * @throws IOException If the entry does not directly follow the last applied one
+     */
+    private synchronized long apply(long sequence, String command) throws IOException {
+        if (sequence != applied + 1) {
+            throw new IOException("Expected sequence " + (applied + 1) + ", got " + sequence);
+        }
+        Main.execute(proxy, command.split("\\s+"));
+        capture.take();
+        applied = sequence;
+        notifyAll();
+        return applied;
+    }
+
+    /**
+     * @return Sequence number of the last applied log entry
+     */
+    public synchronized long appliedSequence() {
+        return applied;
+    }
+
+    /**
+     * Method for rendering account details
+     *
+     * @param name        Name of the owner
+     * @param minSequence Sequence number, that has to be applied before the view
+     * @return Text of the View command, or an error if the replica did not catch up in time
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized String view(String name, long minSequence) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + viewTimeout;
+        while (applied < minSequence) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return "Error: Replica is behind sequence " + minSequence + ".";
+            }
+            wait(remaining);
+        }
+        proxy.viewAccount(name);
+        return capture.take().stripTrailing();
+    }
+
+    private void accept(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                Socket client = server.accept();
+                ReplicationPrimary.startDaemon("replica-client", () -> serve(client));
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    System.err.println("Replica accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Method for answering requests of one client until it disconnects
+     *
+     * @param client Client connection
+     */
+    private void serve(Socket client) {
+        try (client) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] words = line.strip().split("\\s+");
+                if (words[0].equals("View") && (words.length == 2 || words.length == 3)) {
+                    writer.write(view(words[1], words.length == 3 ? Long.parseLong(words[2]) : 0));
+                } else if (words[0].equals("Sequence") && words.length == 1) {
+                    writer.write(String.valueOf(appliedSequence()));
+                } else {
+                    writer.write("Error: Unknown request " + line + ".");
+                }
+                writer.newLine();
+                if (!reader.ready()) {
+                    writer.flush();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Replica client failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * Class for measuring bytes allocated by the bank system per executed command, using the allocation counter
+ * of the current thread. Results are broken down by command type. When budgets are given, the run fails
+ * (with exit status 1) if the average or the maximum allocation of any command type exceeds its budget, or if a budget names
+ * a command type that is unknown or was not executed, so it can be used as a regression check for allocation-free
+ * paths. Before measuring, the workload is executed on renamed accounts, so that class loading and JIT compilation
+ * are not counted and the measured run starts from the same account state.
+ * <p>
+ * Options: the workload options of LoadDriver (--in or the WorkloadGenerator options), --warmup (number of warmup
+ * runs, 1 by default), --budget (e.g. "Deposit=512,Activate=0", average bytes per command) and --max-budget
+ * (the same for the most allocating single command).
+ * check-allocation-budgets.sh runs a fixed workload with per-type budgets; it is not run automatically.
+ *
+ * @see LoadDriver
+ */
+class AllocationProfiler {
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final TreeMap<String, long[]> statistics = new TreeMap<>();
+    private final long overhead;
+
+    public AllocationProfiler() {
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("Thread allocation counters are not supported by this JVM");
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long before = threads.getCurrentThreadAllocatedBytes();
+        long after = threads.getCurrentThreadAllocatedBytes();
+        overhead = after - before;
+    }
+
+    /**
+     * Method for running the profiler from the command line
+     *
+     * @param options Parsed command line options
+     */
+    public static void run(HashMap<String, String> options) {
+        ArrayList<String[]> commands = LoadDriver.loadCommands(options);
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "1"));
+        AllocationProfiler profiler = new AllocationProfiler();
+        BankSystemProxyWithLogging proxy = BankSystemProxyWithLogging.getInstance();
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = 0; i < warmup; i++) {
+                for (String[] words : commands) {
+                    Main.execute(proxy, renamed(words, "Warmup" + i + "-"));
+                }
+            }
+            profiler.execute(proxy, commands);
+        } finally {
+            System.setOut(console);
+        }
+        profiler.report(System.out);
+        ArrayList<String> violations = new ArrayList<>();
+        if (options.containsKey("budget")) {
+            violations.addAll(profiler.checkBudgets(parseBudgets(options.get("budget")), false));
+        }
+        if (options.containsKey("max-budget")) {
+            violations.addAll(profiler.checkBudgets(parseBudgets(options.get("max-budget")), true));
+        }
+        violations.forEach(System.err::println);
+        if (!violations.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Method for executing commands and recording allocation of each of them
+     *
+     * @param proxy    Proxy to execute the commands through
+     * @param commands List of commands split into words
+     */
+    public void execute(BankSystemProxyWithLogging proxy, List<String[]> commands) {
+        for (String[] words : commands) {
+            long[] entry = statistics.computeIfAbsent(words[0], type -> new long[3]);
+            long before = threads.getCurrentThreadAllocatedBytes();
+            Main.execute(proxy, words);
+            long allocated = threads.getCurrentThreadAllocatedBytes() - before - overhead;
+            entry[0]++;
+            entry[1] += allocated;
+            entry[2] = Math.max(entry[2], allocated);
+        }
+    }
+
+    /**
+     * Method for printing count, average and maximum allocated bytes for each command type
+     *
+     * @param out Stream to print to
+     */
+    public void report(PrintStream out) {
+        statistics.forEach((type, entry) -> out.println(type + ": Commands: " + entry[0] + ", Average: "
+                + average(entry) + " bytes, Max: " + entry[2] + " bytes"));
+    }
+
+    /**
+     * Method for checking allocation of each command type against its budget
+     *
+     * @param budgets Map from command type to the allowed number of bytes
+     * @param maximum True to check the most allocating single command, false to check the average
+     * @return Descriptions of exceeded budgets, empty if all budgets are met
+     */
+    public List<String> checkBudgets(HashMap<String, Long> budgets, boolean maximum) {
+        ArrayList<String> violations = new ArrayList<>();
+        budgets.forEach((type, budget) -> {
+            long[] entry = statistics.get(type);
+            if (!Arrays.asList(WorkloadGenerator.COMMANDS).contains(type)) {
+                violations.add("Error: Budget for unknown command type " + type + ".");
+            } else if (entry == null) {
+                violations.add("Error: Budget for " + type + " was not checked, the workload has no such commands.");
+            } else if ((maximum ? entry[2] : average(entry)) > budget) {
+                violations.add("Error: " + type + " allocates " + (maximum ? entry[2] + " bytes at most"
+                        : average(entry) + " bytes on average") + " per command, budget is " + budget + " bytes.");
+            }
+        });
+        return violations;
+    }
+
+    /**
+     * Method for parsing budgets of form "Type=bytes,Type=bytes"
+     *
+     * @param text Budgets as text
+     * @return Map from command type to the allowed average number of bytes
+     */
+    static HashMap<String, Long> parseBudgets(String text) {
+        HashMap<String, Long> budgets = new HashMap<>();
+        for (String entry : text.split(",")) {
+            String[] pair = entry.split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Bad budget entry: " + entry);
+            }
+            budgets.put(pair[0], Long.parseLong(pair[1]));
+        }
+        return budgets;
+    }
+
+    /**
+     * Method for copying a command with the given prefix added to every account name in it
+     *
+     * @param words  Command split into words
+     * @param prefix Prefix to add
+     * @return Renamed copy of the command
+     */
+    static String[] renamed(String[] words, String prefix) {
+        String[] copy = words.clone();
+        switch (words[0]) {
+            case "Create" -> copy[3] = prefix + words[3];
+            case "Transfer" -> {
+                copy[1] = prefix + words[1];
+                copy[2] = prefix + words[2];
+            }
+            default -> copy[1] = prefix + words[1];
+        }
+        return copy;
+    }
+
+    private static long average(long[] entry) {
+        return entry[0] == 0 ? 0 : entry[1] / entry[0];
+    }
+}
+
+/**
+ * Class for importing accounts in bulk from a CSV file with lines of form "type,name,initialDeposit"
+ * (an optional header line starting with "type," is skipped). The file is split into chunks at line boundaries,
+ * chunks are parsed in parallel into ready accounts with their initial deposit history, and then added to the
+ * bank system in one step with the storage sized up front. Unlike the Create command, nothing is printed
+ * per account.
+ * <p>
+ * After the import, commands from the standard input are processed as usual, if there are any.
+ * <p>
+ * Options: --file and --threads (number of available processors by default).
+ *
+ * @see BankSystemProxyWithLogging#importAccounts
+ */
+class AccountImporter {
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+    private static final FeeCalculationStrategy SAVINGS = new SavingsStrategy();
+    private static final FeeCalculationStrategy CHECKING = new CheckingStrategy();
+    private static final FeeCalculationStrategy BUSINESS = new BusinessStrategy();
+
+    /**
+     * Method for running the import from the command line
+     *
+     * @param options Parsed command line options
+     */
+    public static void run(HashMap<String, String> options) {
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long start = System.nanoTime();
+        int count = importFile(Path.of(options.get("file")), threads);
+        System.err.println("Imported " + count + " new accounts in "
+                + ValueFormat.format((System.nanoTime() - start) / 1e9) + " s");
+        Scanner sc = new Scanner(System.in);
+        if (sc.hasNextInt()) {
+            BankSystemProxyWithLogging proxy = BankSystemProxyWithLogging.getInstance();
+            for (String[] words : Main.readCommands(sc)) {
+                Main.execute(proxy, words);
+            }
+        }
+    }
+
+    /**
+     * Method for importing accounts from a file into the bank system
+     *
+     * @param file    CSV file to import
+     * @param threads Number of threads to parse with
+     * @return Number of added accounts, not counting the ones that replaced accounts with the same name
+     */
+    public static int importFile(Path file, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long chunkSize = Math.min(Integer.MAX_VALUE, Math.max(MIN_CHUNK_SIZE, size / (threads * 4L)));
+            ArrayList<Future<ArrayList<Account>>> futures = new ArrayList<>();
+            long from = 0;
+            while (from < size) {
+                long to = from + chunkSize >= size ? size : nextLine(channel, from + chunkSize);
+                long chunkStart = from;
+                futures.add(executor.submit(() -> parseChunk(channel, chunkStart, to)));
+                from = to;
+            }
+            ArrayList<ArrayList<Account>> chunks = new ArrayList<>(futures.size());
+            int count = 0;
+            for (Future<ArrayList<Account>> future : futures) {
+                ArrayList<Account> chunk = future.get();
+                chunks.add(chunk);
+                count += chunk.size();
+            }
+            return BankSystemProxyWithLogging.getInstance().importAccounts(chunks, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalArgumentException("Failed to import " + file + ": " + e.getCause().getMessage(),
+                    e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Import interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Method for finding the start of the line following the given position
+     *
+     * @param channel  File to search in
+     * @param position Position to search from
+     * @return Position right after the next line break, or the file size if there is none
+     * @throws IOException If reading fails
+     */
+    private static long nextLine(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (channel.read(buffer, position) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position++;
+                if (buffer.get() == '\n') {
+                    return position;
+                }
+            }
+            buffer.clear();
+        }
+        return channel.size();
+    }
+
+    /**
+     * Method for parsing whole lines between two positions of the file into accounts
+     *
+     * @param channel File to read from
+     * @param from    Position of the first line
+     * @param to      Position after the last line
+     * @return Accounts in the order of the lines
+     * @throws IOException If reading fails
+     */
+    private static ArrayList<Account> parseChunk(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, from + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        byte[] bytes = buffer.array();
+        ArrayList<Account> accounts = new ArrayList<>(bytes.length / 32);
+        int lineStart = 0;
+        while (lineStart < bytes.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            String line = new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8).strip();
+            boolean header = from == 0 && lineStart == 0 && line.regionMatches(true, 0, "type,", 0, 5);
+            if (!line.isEmpty() && !header) {
+                accounts.add(parseAccount(line));
+            }
+            lineStart = lineEnd + 1;
+        }
+        return accounts;
+    }
+
+    /**
+     * Method for building an account from a CSV line
+     *
+     * @param line Line of form "type,name,initialDeposit"
+     * @return Account with strategy and initial deposit history set
+     */
+    private static Account parseAccount(String line) {
+        String[] fields = line.split(",");
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("Expected \"type,name,initialDeposit\", got: " + line);
+        }
+        String name = fields[1].strip();
+        if (name.isEmpty() || name.chars().anyMatch(Character::isWhitespace)) {
+            throw new IllegalArgumentException("Account name must be non-empty and without spaces, got: " + line);
+        }
+        double initialDeposit = Double.parseDouble(fields[2].strip());
+        Account account = new Account(name, initialDeposit);
+        account.setStrategy(switch (fields[0].strip()) {
+            case "Savings" -> SAVINGS;
+            case "Checking" -> CHECKING;
+            case "Business" -> BUSINESS;
+            default -> throw new IllegalArgumentException("Unknown account type: " + fields[0]);
+        });
+        account.addHistory(BankSystemProxyWithLogging.initialDepositEntry(initialDeposit));
+        return account;
+    }
+}